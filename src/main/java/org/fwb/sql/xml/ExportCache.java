@@ -0,0 +1,603 @@
+package org.fwb.sql.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.fwb.xml.sax.SaxUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+
+/**
+ * caches the encoded (UTF-8) output of the exporters
+ * ({@link Sql2Html#toTable}, {@link Sql2Xml#toXmlFlat}, {@link GroupingFilter#toGrouping})
+ * keyed by SQL text, bind parameters, export mode and options (see {@link Key}).
+ *
+ * bytes are held off-heap, in direct {@link ByteBuffer} segments of {@link #SEGMENT_SIZE},
+ * against a global byte budget shared by all entries.
+ * the budget bounds the segments ever allocated: released segments are pooled for reuse, not left to the garbage collector.
+ * when it is exhausted, expired entries are evicted, then least-recently-used ones
+ * (only among completed entries no caller is streaming from, since only those free any segments).
+ * completed entries expire a fixed time after they finished loading.
+ *
+ * loading is single-flight: the first caller to miss a key runs the query, writing straight through to its own output,
+ * while concurrent callers for the same key share its entry
+ * and stream from it as soon as bytes become available.
+ * an entry which fails to load is dropped (the next caller retries)
+ * and its failure is re-thrown to every caller streaming from it.
+ *
+ * evicted entries remain readable by callers already streaming from them;
+ * their segments return to the pool once those callers are done.
+ * an entry which cannot fit in the budget, or exceeds the per-entry cap, stops buffering and is dropped,
+ * its segments returning to the pool at once:
+ * the caller running its query still receives the whole output,
+ * but concurrent callers sharing it fail (with an {@link OverflowException}).
+ */
+public class ExportCache {
+	static final Logger LOG = LoggerFactory.getLogger(ExportCache.class);
+
+	/** size of each off-heap segment, also the unit of budget accounting */
+	public static final int SEGMENT_SIZE = 64 * 1024;
+
+	/** the supported exporters */
+	public static enum Mode {
+		/** @see Sql2Html#toTable(ResultSet, ContentHandler, boolean, Function) */
+		HTML_TABLE {
+			@Override
+			void export(ResultSet rs, ContentHandler ch, Key k) throws SQLException, SAXException {
+				if (k.SERIALIZER == null)
+					Sql2Html.toTable(rs, ch, k.HEADER);
+				else
+					Sql2Html.toTable(rs, ch, k.HEADER, k.SERIALIZER);
+			}
+		},
+		/** @see Sql2Xml#toXmlFlat(ResultSet, ContentHandler, Function) */
+		XML_FLAT {
+			@Override
+			void export(ResultSet rs, ContentHandler ch, Key k) throws SQLException, SAXException {
+				Sql2Xml.toXmlFlat(rs, ch, k.SERIALIZER);
+			}
+		},
+		/** @see GroupingFilter#toGrouping(ResultSet, ContentHandler, Function, List) */
+		XML_GROUPING {
+			@Override
+			void export(ResultSet rs, ContentHandler ch, Key k) throws SQLException, SAXException {
+				GroupingFilter.toGrouping(rs, ch, k.SERIALIZER, k.GROUPING);
+			}
+		};
+
+		abstract void export(ResultSet rs, ContentHandler ch, Key k) throws SQLException, SAXException;
+	}
+
+	/**
+	 * identifies one cached export.
+	 *
+	 * the serializer function itself does not take part in equality, only its id does;
+	 * callers must use a distinct id for each distinct serializer (and {@code null} for none).
+	 *
+	 * array-valued bind parameters (e.g. {@code byte[]} blobs) are copied, and compared by content.
+	 */
+	public static class Key {
+		final String SQL;
+		final List<Object> PARAMS;
+		final Mode MODE;
+		final List<Integer> GROUPING;
+		final boolean HEADER;
+		final String SERIALIZER_ID;
+		final Function<Object, String> SERIALIZER;
+		final int HASH;
+
+		Key(String sql, List<?> params, Mode mode, List<Integer> grouping, boolean header,
+				String serializerId, Function<Object, String> serializer) {
+			Preconditions.checkArgument((serializerId == null) == (serializer == null),
+					"serializerId (%s) must be given if and only if serializer is", serializerId);
+			SQL = Preconditions.checkNotNull(sql, "sql");
+			List<Object> p = new ArrayList<Object>(Preconditions.checkNotNull(params, "params").size());
+			for (Object o : params)
+				p.add(copy(o));
+			PARAMS = Collections.unmodifiableList(p);
+			MODE = mode;
+			GROUPING = grouping == null
+					? Collections.<Integer>emptyList()
+					: Collections.unmodifiableList(new ArrayList<Integer>(grouping));
+			HEADER = header;
+			SERIALIZER_ID = serializerId;
+			SERIALIZER = serializer;
+			HASH = Objects.hashCode(SQL, Arrays.deepHashCode(PARAMS.toArray()), MODE, GROUPING, HEADER, SERIALIZER_ID);
+		}
+
+		/** @return	a deep copy of {@code o} if it is an array, otherwise {@code o} itself */
+		static Object copy(Object o) {
+			if (o == null || ! o.getClass().isArray())
+				return o;
+			int length = Array.getLength(o);
+			Object copy = Array.newInstance(o.getClass().getComponentType(), length);
+			if (o.getClass().getComponentType().isPrimitive())
+				System.arraycopy(o, 0, copy, 0, length);
+			else
+				for (int i = 0; i < length; ++i)
+					Array.set(copy, i, copy(Array.get(o, i)));
+			return copy;
+		}
+
+		/** @see Sql2Html#toTable(ResultSet, ContentHandler, boolean, Function) */
+		public static Key table(String sql, List<?> params, boolean header,
+				String serializerId, Function<Object, String> serializer) {
+			return new Key(sql, params, Mode.HTML_TABLE, null, header, serializerId, serializer);
+		}
+		/** @see Sql2Xml#toXmlFlat(ResultSet, ContentHandler, Function) */
+		public static Key xmlFlat(String sql, List<?> params,
+				String serializerId, Function<Object, String> serializer) {
+			return new Key(sql, params, Mode.XML_FLAT, null, false, serializerId, serializer);
+		}
+		/** @see GroupingFilter#toGrouping(ResultSet, ContentHandler, Function, List) */
+		public static Key grouping(String sql, List<?> params, List<Integer> grouping,
+				String serializerId, Function<Object, String> serializer) {
+			return new Key(sql, params, Mode.XML_GROUPING, Preconditions.checkNotNull(grouping, "grouping"),
+					false, serializerId, serializer);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (! (o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return HASH == k.HASH
+					&& MODE == k.MODE
+					&& HEADER == k.HEADER
+					&& SQL.equals(k.SQL)
+					&& Arrays.deepEquals(PARAMS.toArray(), k.PARAMS.toArray())
+					&& GROUPING.equals(k.GROUPING)
+					&& Objects.equal(SERIALIZER_ID, k.SERIALIZER_ID);
+		}
+		@Override
+		public int hashCode() {
+			return HASH;
+		}
+		@Override
+		public String toString() {
+			return MoreObjects.toStringHelper(this)
+					.add("mode", MODE)
+					.add("sql", SQL)
+					.add("params", Arrays.deepToString(PARAMS.toArray()))
+					.add("grouping", GROUPING)
+					.add("header", HEADER)
+					.add("serializer", SERIALIZER_ID)
+					.toString();
+		}
+	}
+
+	final long MAX_BYTES, TTL_NANOS;
+	/** the most segments which may exist at once */
+	final long LIMIT;
+	/** the most segments any one entry may hold */
+	final long ENTRY_LIMIT;
+
+	/*
+	 * the following are guarded by the cache itself, as are Entry.attached and Entry.pins.
+	 * when both locks are needed, the cache is locked before (never within) an entry.
+	 */
+	/** access-ordered (LRU first) */
+	final Map<Key, Entry> ENTRIES = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	/** released segments, for reuse */
+	final Deque<ByteBuffer> POOL = new ArrayDeque<ByteBuffer>();
+	/** segments allocated so far (never more than {@link #LIMIT}) */
+	long allocated = 0;
+
+	/**
+	 * caps each entry at a quarter of {@code maxBytes} (but at least one segment),
+	 * so that no single export can flush the whole cache.
+	 *
+	 * @see #ExportCache(long, long, long, TimeUnit)
+	 */
+	public ExportCache(long maxBytes, long ttl, TimeUnit unit) {
+		this(maxBytes, Math.max(SEGMENT_SIZE, maxBytes / 4), ttl, unit);
+	}
+	/**
+	 * @param maxBytes		the global budget for all segments, rounded down to a multiple of {@link #SEGMENT_SIZE}
+	 * @param maxEntryBytes	the budget for any one entry, rounded down likewise
+	 * @param ttl			how long a completed entry may be served, after it finished loading
+	 */
+	public ExportCache(long maxBytes, long maxEntryBytes, long ttl, TimeUnit unit) {
+		Preconditions.checkArgument(SEGMENT_SIZE <= maxBytes,
+				"maxBytes (%s) must hold at least one segment (%s)", maxBytes, SEGMENT_SIZE);
+		Preconditions.checkArgument(SEGMENT_SIZE <= maxEntryBytes && maxEntryBytes <= maxBytes,
+				"maxEntryBytes (%s) must hold at least one segment (%s), and at most maxBytes (%s)",
+				maxEntryBytes, SEGMENT_SIZE, maxBytes);
+		Preconditions.checkArgument(0 < ttl,
+				"ttl (%s) must be positive", ttl);
+		MAX_BYTES = maxBytes;
+		LIMIT = maxBytes / SEGMENT_SIZE;
+		ENTRY_LIMIT = maxEntryBytes / SEGMENT_SIZE;
+		TTL_NANOS = unit.toNanos(ttl);
+	}
+
+	/**
+	 * writes the export identified by {@code key} to {@code out}.
+	 *
+	 * on a miss, runs the query on {@code conn} (in the calling thread), writing to {@code out} as it goes.
+	 * otherwise copies from the cached (or concurrently loading) entry,
+	 * blocking as necessary for bytes still being loaded.
+	 *
+	 * @param conn	used only on a miss
+	 * @throws SQLException thrown by the query (only on a miss)
+	 * @throws SAXException thrown by the exporter (only on a miss)
+	 * @throws IOException thrown by {@code out}, or if a concurrent load (which this call shares) fails
+	 */
+	public void export(Connection conn, Key key, OutputStream out)
+			throws SQLException, SAXException, IOException {
+		Entry e;
+		boolean miss = false;
+		synchronized (this) {
+			e = ENTRIES.get(key);
+			if (e != null && e.isExpired(System.nanoTime())) {
+				detach(e);
+				e = null;
+			}
+			if (e == null) {
+				e = new Entry(key);
+				ENTRIES.put(key, e);
+				miss = true;
+			}
+			++ e.pins;
+		}
+
+		try {
+			if (miss)
+				load(conn, e, out);
+			else
+				ByteStreams.copy(new EntryInputStream(e), out);
+		} finally {
+			unpin(e);
+		}
+	}
+
+	/** drops every entry (calls already streaming from one are unaffected) */
+	public synchronized void clear() {
+		for (Entry e : new ArrayList<Entry>(ENTRIES.values()))
+			detach(e);
+	}
+
+	/** @return	the bytes currently held by entries, cached or still being streamed */
+	public synchronized long size() {
+		return (allocated - POOL.size()) * SEGMENT_SIZE;
+	}
+
+	void load(Connection conn, Entry e, OutputStream out)
+			throws SQLException, SAXException, IOException {
+		LOG.debug("loading {}", e.KEY);
+		TeeOutputStream tee = new TeeOutputStream(e, out);
+		try {
+			run(conn, e.KEY, tee);
+		} catch (Throwable x) {
+			e.fail(x);
+			synchronized (this) {
+				detach(e);
+			}
+			Throwables.propagateIfInstanceOf(x, SQLException.class);
+			Throwables.propagateIfInstanceOf(x, SAXException.class);
+			Throwables.propagateIfInstanceOf(x, IOException.class);
+			throw Throwables.propagate(x);
+		}
+		e.complete();	// only once the jdbc resources are closed
+		if (tee.outFailure != null)
+			throw tee.outFailure;
+	}
+
+	/** runs the export uncached, into {@code out} */
+	static void run(Connection conn, Key k, OutputStream out)
+			throws SQLException, SAXException, IOException {
+		PreparedStatement ps = conn.prepareStatement(k.SQL);
+		try {
+			for (int i = 0; i < k.PARAMS.size(); ++i)
+				ps.setObject(i+1, k.PARAMS.get(i));
+			ResultSet rs = ps.executeQuery();
+			try {
+				Writer w = new OutputStreamWriter(out, Charsets.UTF_8);
+				ContentHandler ch = SaxUtil.createContentHandler(w);
+				ch.startDocument();
+				k.MODE.export(rs, ch, k);
+				ch.endDocument();
+				w.flush();
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+	}
+
+	/**
+	 * a segment for (the loader of) {@code e} to write into,
+	 * evicting as needed to stay within {@link #LIMIT}:
+	 * expired entries first, then least-recently-used ones among those whose eviction frees segments.
+	 *
+	 * @return	null if {@code e} cannot fit within {@link #ENTRY_LIMIT} or the budget,
+	 * 		in which case it is failed (with an {@link OverflowException}) and detached
+	 */
+	synchronized ByteBuffer segment(Entry e) {
+		ByteBuffer seg = null;
+		if (e.segments() < ENTRY_LIMIT) {
+			if (POOL.isEmpty() && LIMIT <= allocated) {
+				long now = System.nanoTime();
+				for (Entry x : new ArrayList<Entry>(ENTRIES.values()))
+					if (x.isExpired(now))
+						detach(x);
+			}
+			while (POOL.isEmpty() && LIMIT <= allocated) {
+				Entry lru = null;
+				for (Entry x : ENTRIES.values())
+					if (x != e && 0 == x.pins && x.isDone()) {
+						lru = x;
+						break;
+					}
+				if (lru == null)
+					break;
+				detach(lru);
+			}
+
+			seg = POOL.poll();
+			if (seg == null && allocated < LIMIT) {
+				seg = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+				++ allocated;
+			}
+		}
+		if (seg == null) {
+			LOG.debug("{} exceeds its budget (maxBytes {}), not retained", e.KEY, MAX_BYTES);
+			e.fail(new OverflowException(e.KEY));
+			detach(e);
+		}
+		return seg;
+	}
+
+	/**
+	 * remove {@code e} from the cache, if it is still there.
+	 * its segments return to the pool once no caller is streaming from it,
+	 * or at once if it failed (readers never touch a failed entry's segments).
+	 */
+	void detach(Entry e) {
+		assert Thread.holdsLock(this);
+		if (e.attached) {
+			if (ENTRIES.get(e.KEY) == e)
+				ENTRIES.remove(e.KEY);
+			e.attached = false;
+		}
+		if (0 == e.pins || e.isFailed())
+			recycle(e);
+	}
+
+	synchronized void unpin(Entry e) {
+		if (0 == -- e.pins && ! e.attached)
+			recycle(e);
+	}
+
+	/** return the segments of a detached, unpinned (or failed) entry to the pool */
+	private void recycle(Entry e) {
+		assert Thread.holdsLock(this);
+		synchronized (e) {
+			POOL.addAll(e.SEGMENTS);
+			e.SEGMENTS.clear();
+		}
+	}
+
+	/** thrown to callers sharing an entry which stopped loading because it exceeded its budget */
+	public static class OverflowException extends IOException {
+		private static final long serialVersionUID = 1L;
+		OverflowException(Key k) {
+			super("exceeds the budget of its cache: " + k);
+		}
+	}
+
+	/**
+	 * the shared, growing output of one export.
+	 * {@link #SEGMENTS}, {@link #written}, {@link #done}, {@link #failure} and {@link #completed} are guarded by the entry itself;
+	 * {@link #attached} and {@link #pins} (the loader and readers currently using it) by the owning cache.
+	 * only the loader's thread writes to, or fails, an entry.
+	 */
+	final class Entry {
+		final Key KEY;
+		final List<ByteBuffer> SEGMENTS = new ArrayList<ByteBuffer>();
+		long written = 0;
+		boolean done = false;
+		Throwable failure = null;
+		long completed;
+
+		boolean attached = true;
+		int pins = 0;
+
+		Entry(Key key) {
+			KEY = key;
+		}
+
+		synchronized boolean isExpired(long now) {
+			return done && failure == null && TTL_NANOS <= now - completed;
+		}
+
+		synchronized boolean isDone() {
+			return done;
+		}
+
+		synchronized boolean isFailed() {
+			return failure != null;
+		}
+
+		synchronized int segments() {
+			return SEGMENTS.size();
+		}
+
+		/** appends to the last segment, acquiring new ones as needed. stops (and fails) if none can be had */
+		void write(byte[] b, int off, int len) {
+			while (0 < len) {
+				ByteBuffer seg;
+				synchronized (this) {
+					if (done)
+						return;
+					seg = written < (long) SEGMENTS.size() * SEGMENT_SIZE
+							? SEGMENTS.get(SEGMENTS.size() - 1)
+							: null;
+				}
+				if (seg == null) {
+					seg = segment(this);
+					if (seg == null)
+						return;	// failed
+					synchronized (this) {
+						SEGMENTS.add(seg);
+					}
+				}
+				synchronized (this) {
+					int pos = (int) (written % SEGMENT_SIZE);
+					int n = Math.min(len, SEGMENT_SIZE - pos);
+					ByteBuffer d = seg.duplicate();
+					d.position(pos);
+					d.put(b, off, n);
+					written += n;
+					off += n;
+					len -= n;
+					notifyAll();
+				}
+			}
+		}
+
+		synchronized void complete() {
+			if (! done) {
+				done = true;
+				completed = System.nanoTime();
+				notifyAll();
+			}
+		}
+
+		synchronized void fail(Throwable x) {
+			if (! done) {
+				failure = x;
+				done = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * blocks until bytes beyond {@code pos} are available, or the entry is done.
+		 * @return	the number of bytes read, or -1 at end
+		 */
+		synchronized int read(long pos, byte[] b, int off, int len) throws IOException {
+			while (written <= pos && ! done) {
+				try {
+					wait();
+				} catch (InterruptedException x) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted waiting for " + KEY, x);
+				}
+			}
+			if (failure instanceof OverflowException)
+				throw new OverflowException(KEY);
+			if (failure != null)
+				throw new IOException("failed loading " + KEY, failure);
+			if (written <= pos)
+				return -1;
+
+			int i = (int) (pos / SEGMENT_SIZE), p = (int) (pos % SEGMENT_SIZE);
+			int n = (int) Math.min(Math.min(len, SEGMENT_SIZE - p), written - pos);
+			ByteBuffer d = SEGMENTS.get(i).duplicate();
+			d.position(p);
+			d.get(b, off, n);
+			return n;
+		}
+	}
+
+	/**
+	 * the loader's output: writes into an entry (while it is still buffering) and straight through to the caller.
+	 * a failing caller doesn't fail the entry (others may be streaming from it), unless nothing is left to write for.
+	 */
+	static class TeeOutputStream extends OutputStream {
+		final Entry ENTRY;
+		OutputStream out;
+		IOException outFailure;
+		TeeOutputStream(Entry e, OutputStream out) {
+			ENTRY = e;
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ENTRY.write(b, off, len);
+			if (out != null)
+				try {
+					out.write(b, off, len);
+				} catch (IOException x) {
+					outFailure = x;
+					out = null;
+				}
+			check();
+		}
+		@Override
+		public void flush() throws IOException {
+			if (out != null)
+				try {
+					out.flush();
+				} catch (IOException x) {
+					outFailure = x;
+					out = null;
+				}
+			check();
+		}
+		private void check() throws IOException {
+			if (out == null && ENTRY.isDone())
+				throw outFailure;
+		}
+	}
+
+	/** an independent reader over an entry, from its beginning */
+	static class EntryInputStream extends InputStream {
+		final Entry ENTRY;
+		long pos = 0;
+		EntryInputStream(Entry e) {
+			ENTRY = e;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return -1 == read(b, 0, 1) ? -1 : b[0] & 0xFF;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			Preconditions.checkPositionIndexes(off, off + len, b.length);
+			if (0 == len)
+				return 0;
+			int n = ENTRY.read(pos, b, off, len);
+			if (0 < n)
+				pos += n;
+			return n;
+		}
+	}
+}
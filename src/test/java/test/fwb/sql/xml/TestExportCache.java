@@ -0,0 +1,422 @@
+package test.fwb.sql.xml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.fwb.sql.xml.ExportCache;
+import org.fwb.sql.xml.ExportCache.Key;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Strings;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+
+/**
+ * unit test runs the cache against a {@link Proxy}-backed jdbc {@link Connection},
+ * whose single-column result sets can be paused, or made to fail, mid-export.
+ */
+public class TestExportCache {
+	static final long TIMEOUT = 10;	// seconds
+	/** one row's value: comfortably more than a segment's half, and any writer's buffer */
+	static final String BIG = Strings.repeat("a", 100 * 1000);
+
+	FakeDb db;
+	ExecutorService pool;
+
+	@Before
+	public void setUp() {
+		db = new FakeDb();
+		pool = Executors.newCachedThreadPool();
+	}
+	@After
+	public void tearDown() {
+		db.proceed.countDown();
+		pool.shutdownNow();
+	}
+
+	@Test
+	public void testSingleFlight() throws Exception {
+		ExportCache cache = new ExportCache(16 * ExportCache.SEGMENT_SIZE, 16 * ExportCache.SEGMENT_SIZE, 1, TimeUnit.MINUTES);
+		db.rows = 3;
+		db.pauseAfter = 1;
+		Key k = Key.xmlFlat("select 1", Collections.emptyList(), null, null);
+
+		Future<byte[]> loader = submit(cache, k);
+		assertTrue(db.paused.await(TIMEOUT, TimeUnit.SECONDS));
+
+		List<CountDownLatch> firstBytes = new ArrayList<CountDownLatch>();
+		List<Future<byte[]>> joiners = new ArrayList<Future<byte[]>>();
+		for (int i = 0; i < 4; ++i) {
+			CountDownLatch firstByte = new CountDownLatch(1);
+			firstBytes.add(firstByte);
+			joiners.add(submit(cache, k, firstByte));
+		}
+
+		// bytes reach every joiner while the query is still paused
+		for (CountDownLatch firstByte : firstBytes)
+			assertTrue(firstByte.await(TIMEOUT, TimeUnit.SECONDS));
+		assertFalse(loader.isDone());
+
+		db.proceed.countDown();
+		byte[] expected = loader.get(TIMEOUT, TimeUnit.SECONDS);
+		for (Future<byte[]> joiner : joiners)
+			assertArrayEquals(expected, joiner.get(TIMEOUT, TimeUnit.SECONDS));
+		assertEquals(1, db.queries.count("select 1"));
+
+		// and a later call is a plain hit
+		assertArrayEquals(expected, export(cache, k));
+		assertEquals(1, db.queries.count("select 1"));
+	}
+
+	@Test
+	public void testLru() throws Exception {
+		// each result takes two segments, so only two fit
+		ExportCache cache = new ExportCache(4 * ExportCache.SEGMENT_SIZE, 2 * ExportCache.SEGMENT_SIZE, 1, TimeUnit.MINUTES);
+		Key a = key("a"), b = key("b"), c = key("c");
+
+		export(cache, a);
+		export(cache, b);
+		export(cache, a);	// b is now least-recently used
+		export(cache, c);
+		assertTrue(cache.size() <= 4 * ExportCache.SEGMENT_SIZE);
+
+		export(cache, a);
+		export(cache, c);
+		assertEquals(1, db.queries.count("a"));
+		assertEquals(1, db.queries.count("c"));
+
+		export(cache, b);
+		assertEquals(2, db.queries.count("b"));
+	}
+
+	@Test
+	public void testLargerThanBudget() throws Exception {
+		ExportCache uncached = new ExportCache(16 * ExportCache.SEGMENT_SIZE, 1, TimeUnit.MINUTES);
+		ExportCache cache = new ExportCache(2 * ExportCache.SEGMENT_SIZE, 2 * ExportCache.SEGMENT_SIZE, 1, TimeUnit.MINUTES);
+		db.rows = 4;
+		Key k = key("big");
+		byte[] expected = export(uncached, k);
+		assertTrue(2 * ExportCache.SEGMENT_SIZE < expected.length);
+
+		db.pauseAfter = 1;
+		Future<byte[]> loader = submit(cache, k);
+		assertTrue(db.paused.await(TIMEOUT, TimeUnit.SECONDS));
+		Future<byte[]> joiner = join(cache, k);
+		db.proceed.countDown();
+
+		// the caller running the query still gets all of it...
+		assertArrayEquals(expected, loader.get(TIMEOUT, TimeUnit.SECONDS));
+		assertTrue(cache.size() <= 2 * ExportCache.SEGMENT_SIZE);
+		// ...but it couldn't be shared
+		assertFailure(ExportCache.OverflowException.class, joiner);
+
+		// nor retained
+		assertArrayEquals(expected, export(cache, k));
+		assertEquals(3, db.queries.count("big"));
+	}
+
+	@Test
+	public void testOverflowKeepsOthers() throws Exception {
+		ExportCache cache = new ExportCache(4 * ExportCache.SEGMENT_SIZE, 2 * ExportCache.SEGMENT_SIZE, 1, TimeUnit.MINUTES);
+		export(cache, key("small"));
+
+		// overflows its cap (in its second row), then pauses
+		db.rows = 4;
+		db.pauseAfter = 2;
+		Future<byte[]> loader = submit(cache, key("big"));
+		assertTrue(db.paused.await(TIMEOUT, TimeUnit.SECONDS));
+
+		// the overflowing entry's segments were released at once, and nothing else was evicted for it
+		assertEquals(2 * ExportCache.SEGMENT_SIZE, cache.size());
+		db.rows = 1;
+		export(cache, key("small"));
+		export(cache, key("other"));
+		export(cache, key("other"));
+		assertEquals(1, db.queries.count("small"));
+		assertEquals(1, db.queries.count("other"));
+
+		db.proceed.countDown();
+		loader.get(TIMEOUT, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testExpiredEvictedFirst() throws Exception {
+		// room for two results, each taking two segments
+		ExportCache cache = new ExportCache(4 * ExportCache.SEGMENT_SIZE, 2 * ExportCache.SEGMENT_SIZE, 500, TimeUnit.MILLISECONDS);
+		Key a = key("a"), b = key("b");
+
+		export(cache, a);
+		Thread.sleep(300);
+		export(cache, b);
+		export(cache, a);	// a is now most-recently used...
+		Thread.sleep(250);	// ...but expired
+
+		export(cache, key("c"));
+		export(cache, b);
+		assertEquals(1, db.queries.count("b"));
+		export(cache, a);
+		assertEquals(2, db.queries.count("a"));
+	}
+
+	@Test
+	public void testTtl() throws Exception {
+		ExportCache cache = new ExportCache(16 * ExportCache.SEGMENT_SIZE, 50, TimeUnit.MILLISECONDS);
+		Key k = key("ttl");
+
+		export(cache, k);
+		export(cache, k);
+		assertEquals(1, db.queries.count("ttl"));
+
+		Thread.sleep(100);
+		export(cache, k);
+		assertEquals(2, db.queries.count("ttl"));
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		ExportCache cache = new ExportCache(16 * ExportCache.SEGMENT_SIZE, 1, TimeUnit.MINUTES);
+		db.rows = 3;
+		db.pauseAfter = 1;
+		db.failAfter = 2;
+		Key k = key("fail");
+
+		Future<byte[]> loader = submit(cache, k);
+		assertTrue(db.paused.await(TIMEOUT, TimeUnit.SECONDS));
+		Future<byte[]> joiner = join(cache, k);
+		db.proceed.countDown();
+
+		assertFailure(SQLException.class, loader);
+		assertFailure(IOException.class, joiner);
+
+		// the failed entry was dropped, so the next call retries
+		db.failAfter = -1;
+		export(cache, k);
+		assertEquals(2, db.queries.count("fail"));
+	}
+
+	@Test
+	public void testError() throws Exception {
+		ExportCache cache = new ExportCache(16 * ExportCache.SEGMENT_SIZE, 1, TimeUnit.MINUTES);
+		final CountDownLatch once = new CountDownLatch(1);
+		Key k = Key.xmlFlat("error", Collections.emptyList(), "once", new Function<Object, String>() {
+			@Override
+			public String apply(Object input) {
+				if (0 < once.getCount()) {
+					once.countDown();
+					throw new AssertionError("expected");
+				}
+				return String.valueOf(input);
+			}
+		});
+
+		try {
+			export(cache, k);
+			fail("expected AssertionError");
+		} catch (AssertionError e) {
+			assertEquals("expected", e.getMessage());
+		}
+
+		export(cache, k);
+		assertEquals(2, db.queries.count("error"));
+	}
+
+	@Test
+	public void testArrayParams() throws Exception {
+		ExportCache cache = new ExportCache(16 * ExportCache.SEGMENT_SIZE, 1, TimeUnit.MINUTES);
+		byte[] blob = new byte[] {1, 2, 3};
+		Key k1 = Key.xmlFlat("blob", Arrays.asList(blob), null, null);
+		blob[2] = 4;	// the key holds its own copy
+		Key k2 = Key.xmlFlat("blob", Arrays.asList(new byte[] {1, 2, 3}), null, null);
+		assertEquals(k1, k2);
+		assertEquals(k1.hashCode(), k2.hashCode());
+		assertFalse(k1.equals(Key.xmlFlat("blob", Arrays.asList(new byte[] {1, 2, 4}), null, null)));
+
+		export(cache, k1);
+		export(cache, k2);
+		assertEquals(1, db.queries.count("blob"));
+	}
+
+	static Key key(String sql) {
+		return Key.xmlFlat(sql, Collections.emptyList(), null, null);
+	}
+
+	byte[] export(ExportCache cache, Key k) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		cache.export(db.connection(), k, baos);
+		return baos.toByteArray();
+	}
+
+	Future<byte[]> submit(ExportCache cache, Key k) {
+		return submit(cache, k, new CountDownLatch(1));
+	}
+	/** submits a caller, waiting until it has joined (received its first bytes from) the loading entry */
+	Future<byte[]> join(ExportCache cache, Key k) throws InterruptedException {
+		CountDownLatch firstByte = new CountDownLatch(1);
+		Future<byte[]> f = submit(cache, k, firstByte);
+		assertTrue(firstByte.await(TIMEOUT, TimeUnit.SECONDS));
+		return f;
+	}
+	/** @param firstByte	counted down when the first bytes are written */
+	Future<byte[]> submit(final ExportCache cache, final Key k, final CountDownLatch firstByte) {
+		return pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream() {
+					@Override
+					public synchronized void write(byte[] b, int off, int len) {
+						super.write(b, off, len);
+						firstByte.countDown();
+					}
+				};
+				cache.export(db.connection(), k, baos);
+				return baos.toByteArray();
+			}
+		});
+	}
+
+	static void assertFailure(Class<? extends Throwable> expected, Future<?> f) throws Exception {
+		try {
+			f.get(TIMEOUT, TimeUnit.SECONDS);
+			fail("expected " + expected.getSimpleName());
+		} catch (ExecutionException e) {
+			assertTrue(String.valueOf(e.getCause()), expected.isInstance(e.getCause()));
+		}
+	}
+
+	/**
+	 * each query (counted by its sql) yields {@link #rows} rows of a single column, all {@link #BIG}.
+	 * a query pauses before moving past row {@link #pauseAfter}, and fails moving past row {@link #failAfter}.
+	 */
+	static class FakeDb {
+		final Multiset<String> queries = ConcurrentHashMultiset.create();
+		volatile int rows = 1, pauseAfter = -1, failAfter = -1;
+		final CountDownLatch paused = new CountDownLatch(1), proceed = new CountDownLatch(1);
+
+		Connection connection() {
+			return proxy(Connection.class, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method m, Object[] args) {
+					return "prepareStatement".equals(m.getName())
+							? statement((String) args[0])
+							: defaultValue(m.getReturnType());
+				}
+			});
+		}
+
+		PreparedStatement statement(final String sql) {
+			return proxy(PreparedStatement.class, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method m, Object[] args) {
+					if ("executeQuery".equals(m.getName())) {
+						queries.add(sql);
+						return resultSet();
+					}
+					return defaultValue(m.getReturnType());
+				}
+			});
+		}
+
+		ResultSet resultSet() {
+			return proxy(ResultSet.class, new InvocationHandler() {
+				int row = 0;
+				@Override
+				public Object invoke(Object proxy, Method m, Object[] args) throws Exception {
+					String name = m.getName();
+					if ("next".equals(name)) {
+						if (row == pauseAfter) {
+							paused.countDown();
+							proceed.await();
+						}
+						if (row == failAfter)
+							throw new SQLException("expected");
+						return ++ row <= rows;
+					}
+					if ("getMetaData".equals(name))
+						return metaData();
+					if ("getString".equals(name) || "getObject".equals(name))
+						return BIG;
+					return defaultValue(m.getReturnType());
+				}
+			});
+		}
+
+		static ResultSetMetaData metaData() {
+			return proxy(ResultSetMetaData.class, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method m, Object[] args) {
+					String name = m.getName();
+					if ("getColumnCount".equals(name))
+						return 1;
+					if ("getColumnType".equals(name))
+						return Types.VARCHAR;
+					if ("getColumnTypeName".equals(name))
+						return "VARCHAR";
+					if (m.getReturnType() == String.class)
+						return "c";
+					return defaultValue(m.getReturnType());
+				}
+			});
+		}
+
+		static <T> T proxy(final Class<T> type, final InvocationHandler ih) {
+			return type.cast(Proxy.newProxyInstance(
+					TestExportCache.class.getClassLoader(),
+					new Class<?>[] {type},
+					new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+							if ("toString".equals(m.getName()) && m.getParameterTypes().length == 0)
+								return type.getSimpleName();
+							return ih.invoke(proxy, m, args);
+						}
+					}));
+		}
+
+		static Object defaultValue(Class<?> c) {
+			if (c == boolean.class)
+				return false;
+			if (c == int.class)
+				return 0;
+			if (c == long.class)
+				return 0L;
+			if (c == short.class)
+				return (short) 0;
+			if (c == byte.class)
+				return (byte) 0;
+			if (c == float.class)
+				return 0f;
+			if (c == double.class)
+				return 0d;
+			return null;
+		}
+	}
+}